@@ -2,17 +2,21 @@ package net.crushedpixel.persian;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonStreamParser;
 import com.google.gson.reflect.TypeToken;
 import net.crushedpixel.persian.annotations.Model;
 
+import java.io.Reader;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.ParameterizedType;
-import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 class Deserializer {
@@ -41,154 +45,490 @@ class Deserializer {
     }
 
     private static class CollectionPropertyTarget extends PropertyTarget {
-        public CollectionPropertyTarget(PropertyAccessor accessor, Object target) {
+        /**
+         * The index of the placeholder element in the list to replace.
+         */
+        final int index;
+
+        public CollectionPropertyTarget(PropertyAccessor accessor, Object target, int index) {
             super(accessor, target);
+            this.index = index;
         }
 
         @Override
         void apply(Object model) throws Exception {
-            ((Collection) accessor.get(target)).add(model);
+            ((List) accessor.get(target)).set(index, model);
+        }
+    }
+
+    /**
+     * Decodes the stored values of a property.
+     * How to decode them is resolved once from the property's type.
+     */
+    private static class PropertyDecoder {
+        enum Kind {
+            PRIMITIVE, MODEL, COLLECTION, OBJECT
+        }
+
+        final PropertyAccessor accessor;
+        final Kind kind;
+
+        /**
+         * The property's raw type, or the type of the elements for collections.
+         * Null for raw collections.
+         */
+        final Class<?> type;
+
+        final boolean childrenAreModels;
+        final boolean childrenArePrimitive;
+
+        public PropertyDecoder(PropertyAccessor accessor) {
+            this.accessor = accessor;
+
+            var propType = accessor.getGenericType();
+            var propClazz = TypeToken.get(propType).getRawType();
+
+            // treat collections specially
+            if (Collection.class.isAssignableFrom(propClazz)) {
+                this.kind = Kind.COLLECTION;
+
+                // try to get the type of the elements contained
+                // from the collection's type arguments
+                if (propType instanceof ParameterizedType
+                        && ((ParameterizedType) propType).getActualTypeArguments().length >= 1) {
+                    var pType = (ParameterizedType) propType;
+                    this.type = TypeToken.get(pType.getActualTypeArguments()[0]).getRawType();
+                    this.childrenAreModels = type.isAnnotationPresent(Model.class);
+                    this.childrenArePrimitive = isPrimitiveOrString(type);
+                } else {
+                    this.type = null;
+                    this.childrenAreModels = false;
+                    this.childrenArePrimitive = false;
+                }
+
+                return;
+            }
+
+            this.type = propClazz;
+            this.childrenAreModels = false;
+            this.childrenArePrimitive = false;
+
+            if (propClazz.isAnnotationPresent(Model.class)) {
+                this.kind = Kind.MODEL;
+            } else if (isPrimitiveOrString(propClazz)) {
+                this.kind = Kind.PRIMITIVE;
+            } else {
+                this.kind = Kind.OBJECT;
+            }
+        }
+    }
+
+    /**
+     * Maps the property values of a stored schema to the properties of the current class.
+     */
+    private static class SchemaMapping {
+        final Constructor<?> constructor;
+
+        /**
+         * The decoder for each stored property index,
+         * or null if the property no longer exists.
+         */
+        final PropertyDecoder[] decoders;
+
+        public SchemaMapping(Constructor<?> constructor, PropertyDecoder[] decoders) {
+            this.constructor = constructor;
+            this.decoders = decoders;
+        }
+    }
+
+    /**
+     * The types JsonPrimitive can hold, read from JsonPrimitive using reflection.
+     */
+    private static final Class<?>[] PRIMITIVE_TYPES;
+
+    static {
+        try {
+            var primitiveTypesField = JsonPrimitive.class.getDeclaredField("PRIMITIVE_TYPES");
+            primitiveTypesField.setAccessible(true);
+            PRIMITIVE_TYPES = (Class<?>[]) primitiveTypesField.get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
         }
     }
 
+    /**
+     * The maximum number of stored schemas per class whose compiled mappings are cached.
+     */
+    private static final int MAX_MAPPINGS_PER_CLASS = 8;
+
+    /**
+     * The compiled schema mappings, by class and the stored schema's property names.
+     * A stored schema is identified by its property names, so snapshots written
+     * by different versions of a class each get their own mapping.
+     * <p>
+     * This cache is shared between all deserializers. It is attached to each class,
+     * so it doesn't keep classes or their class loaders alive, and only keeps
+     * the mappings of the most recently used stored schemas of each class.
+     */
+    private static final ClassValue<Map<List<String>, SchemaMapping>> COMPILED_MAPPINGS = new ClassValue<>() {
+        @Override
+        protected Map<List<String>, SchemaMapping> computeValue(Class<?> type) {
+            return Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<List<String>, SchemaMapping> eldest) {
+                    return size() > MAX_MAPPINGS_PER_CLASS;
+                }
+            });
+        }
+    };
+
     private PropertyRegistry properties = new PropertyRegistry();
 
     /**
-     * The model objects that were parsed, by their ID.
+     * The schemas stored in the snapshot, by class name.
+     */
+    private JsonObject schemas = new JsonObject();
+
+    /**
+     * The schema mappings for this snapshot's stored schemas, by class.
+     */
+    private Map<Class<?>, SchemaMapping> mappings = new HashMap<>();
+
+    /**
+     * The property decoders of each class, by property name.
+     * Used for objects that were stored without a schema.
+     */
+    private Map<Class<?>, Map<String, PropertyDecoder>> decoders = new HashMap<>();
+
+    /**
+     * The model objects that were parsed, in the order of their IDs.
      */
-    private Map<Integer, Object> modelObjects = new HashMap<>();
+    private List<Object> modelObjects = new ArrayList<>();
 
     /**
-     * Placeholders for Property Targets to fill in later.
+     * Placeholders for Property Targets to fill in once the referenced model
+     * was parsed, by the referenced model's ID.
      */
-    private Map<PropertyTarget, Integer> modelTargets = new HashMap<>();
+    private Map<Integer, List<PropertyTarget>> modelTargets = new HashMap<>();
 
     <T> T deserialize(String json, Class<T> clazz) throws Exception {
-        var parser = new JsonParser();
-        var obj = parser.parse(json).getAsJsonObject();
+        var parser = new JsonStreamParser(json);
+        if (!parser.hasNext()) {
+            throw new IllegalArgumentException("The snapshot is empty.");
+        }
 
-        {   // parse each model instance into the respective class
-            int id = 0;
-            for (JsonElement e : obj.get("models").getAsJsonArray()) {
-                JsonObject modelObj = e.getAsJsonObject();
-                JsonObject model = modelObj.getAsJsonObject("value");
+        var obj = parser.next();
+        if (!obj.isJsonObject() || !obj.getAsJsonObject().has("models") || parser.hasNext()) {
+            throw new IllegalArgumentException("The snapshot doesn't consist of a single object. Chunked snapshots have to be read from a Reader.");
+        }
 
-                // TODO: respect generics when serializing/deserializing
-                String typeName = modelObj.get("type").getAsString();
-                Class<?> modelClass = Class.forName(typeName);
+        // the snapshot consists of a single chunk
+        parseChunk(obj.getAsJsonObject());
 
-                // parse model instance and add it to the model registry
-                var instance = parseObject(model, modelClass);
-                modelObjects.put(id, instance);
+        return resolveRoot(obj.getAsJsonObject(), clazz);
+    }
 
-                id++;
+    /**
+     * Deserializes an object graph that was serialized in chunks,
+     * linking model references as soon as the referenced model was parsed.
+     *
+     * @param reader The reader to read the header and chunks from.
+     * @param clazz  The type of the root object.
+     * @return The root object.
+     */
+    <T> T deserialize(Reader reader, Class<T> clazz) throws Exception {
+        var parser = new JsonStreamParser(reader);
+        if (!parser.hasNext()) {
+            throw new IllegalArgumentException("The snapshot is empty.");
+        }
+
+        // the header only contains the root reference
+        var header = parser.next();
+        if (!header.isJsonObject() || !header.getAsJsonObject().has("root") || header.getAsJsonObject().has("models")) {
+            throw new IllegalArgumentException("The snapshot doesn't start with a chunk header. Snapshots that weren't serialized in chunks have to be read from a String.");
+        }
+
+        while (parser.hasNext()) {
+            var chunk = parser.next();
+            if (!chunk.isJsonObject()) {
+                throw new IllegalArgumentException("The snapshot contains a malformed chunk.");
             }
+
+            parseChunk(chunk.getAsJsonObject());
         }
 
-        // all models were parsed - fill in every model reference
-        for (Map.Entry<PropertyTarget, Integer> entry : modelTargets.entrySet()) {
-            var target = entry.getKey();
-            var id = entry.getValue();
-            target.apply(modelObjects.get(id));
+        return resolveRoot(header.getAsJsonObject(), clazz);
+    }
+
+    private void parseChunk(JsonObject chunk) throws Exception {
+        if (!chunk.has("models")) {
+            throw new IllegalArgumentException("The snapshot contains a chunk without models.");
         }
 
-        return (T) modelObjects.get(obj.getAsJsonObject("root").get("id").getAsInt());
-    }
-
-    private Object parseValue(JsonElement element, Type genericType) throws Exception {
-        if (isPrimitiveOrString(genericType)) {
-            var primitive = element.getAsJsonPrimitive();
-
-            var clazz = TypeToken.get(genericType).getRawType();
-            if (clazz.isAssignableFrom(double.class)) {
-                return primitive.getAsDouble();
-            } else if (clazz.isAssignableFrom(float.class)) {
-                return primitive.getAsFloat();
-            } else if (clazz.isAssignableFrom(int.class)) {
-                return primitive.getAsInt();
-            } else if (clazz.isAssignableFrom(long.class)) {
-                return primitive.getAsLong();
-            } else if (clazz.isAssignableFrom(String.class)) {
-                return primitive.getAsString();
-            } else if (clazz.isAssignableFrom(boolean.class)) {
-                return primitive.getAsBoolean();
-            } else if (clazz.isAssignableFrom(byte.class)) {
-                return primitive.getAsByte();
-            } else if (clazz.isAssignableFrom(short.class)) {
-                return primitive.getAsShort();
+        // snapshots written before schemas were recorded
+        // store their objects by property name instead
+        if (chunk.has("schemas")) {
+            for (var entry : chunk.getAsJsonObject("schemas").entrySet()) {
+                schemas.add(entry.getKey(), entry.getValue());
             }
         }
 
-        return parseObject(element.getAsJsonObject(), genericType);
+        int firstId = modelObjects.size();
+
+        // parse each model instance into the respective class
+        for (JsonElement e : chunk.get("models").getAsJsonArray()) {
+            JsonObject modelObj = e.getAsJsonObject();
+            JsonElement model = modelObj.get("value");
+
+            // TODO: respect generics when serializing/deserializing
+            String typeName = modelObj.get("type").getAsString();
+            Class<?> modelClass = Class.forName(typeName);
+
+            // parse model instance and add it to the model registry.
+            // its id is its index across all chunks.
+            var instance = parseObject(model, modelClass);
+            modelObjects.add(instance);
+        }
+
+        // references to models parsed before were filled in right away.
+        // fill in the references to the models of this chunk.
+        for (int id = firstId; id < modelObjects.size(); id++) {
+            var targets = modelTargets.remove(id);
+            if (targets == null) continue;
+
+            for (var target : targets) {
+                target.apply(modelObjects.get(id));
+            }
+        }
     }
 
-    private Object parseObject(JsonObject obj, Type genericType) throws Exception {
-        var clazz = TypeToken.get(genericType).getRawType();
+    private <T> T resolveRoot(JsonObject obj, Class<T> clazz) throws Exception {
+        // all models were parsed - every model reference must have been filled in
+        if (!modelTargets.isEmpty()) {
+            throw new IllegalArgumentException("The snapshot references models it doesn't contain.");
+        }
 
-        // create a new instance of the object's type
-        Constructor<?> defaultConstructor;
-        try {
-            defaultConstructor = clazz.getConstructor();
-        } catch (Exception e) {
-            throw new IllegalArgumentException(String.format("%s doesn't have a public no-args constructor.", clazz.getName()));
+        if (!obj.has("root")) {
+            throw new IllegalArgumentException("The snapshot doesn't reference a root model.");
+        }
+
+        var rootId = parseModelReference(obj.getAsJsonObject("root"));
+        if (rootId < 0 || rootId >= modelObjects.size()) {
+            throw new IllegalArgumentException("The snapshot references a root model it doesn't contain.");
+        }
+
+        return (T) modelObjects.get(rootId);
+    }
+
+    private Object parsePrimitive(JsonPrimitive primitive, Class<?> clazz) {
+        if (clazz.isAssignableFrom(double.class)) {
+            return primitive.getAsDouble();
+        } else if (clazz.isAssignableFrom(float.class)) {
+            return primitive.getAsFloat();
+        } else if (clazz.isAssignableFrom(int.class)) {
+            return primitive.getAsInt();
+        } else if (clazz.isAssignableFrom(long.class)) {
+            return primitive.getAsLong();
+        } else if (clazz.isAssignableFrom(String.class)) {
+            return primitive.getAsString();
+        } else if (clazz.isAssignableFrom(boolean.class)) {
+            return primitive.getAsBoolean();
+        } else if (clazz.isAssignableFrom(byte.class)) {
+            return primitive.getAsByte();
+        } else if (clazz.isAssignableFrom(short.class)) {
+            return primitive.getAsShort();
         }
 
-        var instance = defaultConstructor.newInstance();
+        throw new IllegalArgumentException(String.format("Can't deserialize values of type %s.", clazz.getName()));
+    }
+
+    private Object parseObject(JsonElement element, Class<?> clazz) throws Exception {
+        // objects written with a schema store their property values
+        // in an array, in the order of the stored schema
+        if (element.isJsonArray()) {
+            var mapping = getMapping(clazz);
+            var instance = mapping.constructor.newInstance();
+
+            var values = element.getAsJsonArray();
+            if (values.size() != mapping.decoders.length) {
+                throw new IllegalArgumentException(String.format("The snapshot contains a %s with %d values, but its schema has %d properties.",
+                        clazz.getName(), values.size(), mapping.decoders.length));
+            }
+
+            for (int i = 0; i < mapping.decoders.length; i++) {
+                var decoder = mapping.decoders[i];
+                // the property no longer exists in the current class
+                if (decoder == null) continue;
+
+                parseProperty(instance, decoder, values.get(i));
+            }
+
+            return instance;
+        }
+
+        // create a new instance of the object's type
+        var instance = getDefaultConstructor(clazz).newInstance();
 
         // parse the model's properties
-        for (var entry : properties.getAccessors(clazz).entrySet()) {
+        var obj = element.getAsJsonObject();
+        for (var entry : getDecoders(clazz).entrySet()) {
             var name = entry.getKey();
-            var accessor = entry.getValue();
+            var decoder = entry.getValue();
 
-            var propType = entry.getValue().getGenericType();
-            var propClazz = TypeToken.get(propType).getRawType();
+            var prop = obj.get(name);
+            if (prop == null) {
+                // the property may have been stored under a previous name
+                for (var alias : decoder.accessor.getAliases()) {
+                    prop = obj.get(alias);
+                    if (prop != null) break;
+                }
+            }
 
-            // treat collections specially
-            if (Collection.class.isAssignableFrom(propClazz)) {
-                var collection = new ArrayList<>(); // TODO: add support for more list types, sets
-                accessor.set(instance, collection);
+            // the property didn't exist when the object was stored
+            if (prop == null) continue;
 
-                // try to get the type of the elements contained
-                // from the collection's type arguments
-                if (!(propType instanceof ParameterizedType)
-                        || ((ParameterizedType) propType).getActualTypeArguments().length < 1) {
+            parseProperty(instance, decoder, prop);
+        }
+
+        return instance;
+    }
+
+    private void parseProperty(Object instance, PropertyDecoder decoder, JsonElement prop) throws Exception {
+        var accessor = decoder.accessor;
+
+        switch (decoder.kind) {
+            case COLLECTION: {
+                if (decoder.type == null) {
                     throw new IllegalArgumentException("Can't deserialize into raw collections!");
                 }
 
-                var pType = (ParameterizedType) propType;
-                var childType = TypeToken.get(pType.getActualTypeArguments()[0]).getRawType();
-                boolean childrenAreModels = childType.isAnnotationPresent(Model.class);
+                var collection = new ArrayList<>(); // TODO: add support for more list types, sets
+                accessor.set(instance, collection);
 
                 // deserialize the collection
-                for (var e : obj.getAsJsonArray(name)) {
-                    if (childrenAreModels) {
+                for (var e : prop.getAsJsonArray()) {
+                    if (decoder.childrenAreModels) {
+                        // add a placeholder to fill in once the model was parsed
                         var id = parseModelReference(e.getAsJsonObject());
-                        modelTargets.put(new CollectionPropertyTarget(accessor, instance), id);
+                        collection.add(null);
+                        addModelTarget(new CollectionPropertyTarget(accessor, instance, collection.size() - 1), id);
 
+                    } else if (decoder.childrenArePrimitive) {
+                        collection.add(parsePrimitive(e.getAsJsonPrimitive(), decoder.type));
                     } else {
-                        collection.add(parseValue(e, childType));
+                        collection.add(parseObject(e, decoder.type));
                     }
                 }
-
-                continue;
+                break;
+            }
+            case MODEL: {
+                var id = parseModelReference(prop.getAsJsonObject());
+                addModelTarget(new SimplePropertyTarget(accessor, instance), id);
+                break;
             }
+            case PRIMITIVE:
+                accessor.set(instance, parsePrimitive(prop.getAsJsonPrimitive(), decoder.type));
+                break;
+            case OBJECT:
+                accessor.set(instance, parseObject(prop, decoder.type));
+                break;
+        }
+    }
+
+    /**
+     * Returns the decoders of a class's current properties, by property name,
+     * creating them if necessary.
+     *
+     * @param clazz The class to get the decoders for.
+     * @return The property decoders.
+     */
+    private Map<String, PropertyDecoder> getDecoders(Class<?> clazz) {
+        var classDecoders = decoders.get(clazz);
+        if (classDecoders != null) return classDecoders;
+
+        classDecoders = new HashMap<>();
+        for (var entry : properties.getAccessors(clazz).entrySet()) {
+            classDecoders.put(entry.getKey(), new PropertyDecoder(entry.getValue()));
+        }
+
+        decoders.put(clazz, classDecoders);
+        return classDecoders;
+    }
+
+    /**
+     * Returns the mapping from the snapshot's stored schema of a class
+     * to the class's current properties, compiling it if necessary.
+     *
+     * @param clazz The class to get the mapping for.
+     * @return The schema mapping.
+     */
+    private SchemaMapping getMapping(Class<?> clazz) {
+        var mapping = mappings.get(clazz);
+        if (mapping != null) return mapping;
+
+        if (!schemas.has(clazz.getName())) {
+            throw new IllegalArgumentException(String.format("The snapshot doesn't contain a schema for %s.", clazz.getName()));
+        }
+
+        var storedNames = new ArrayList<String>();
+        for (var name : schemas.getAsJsonArray(clazz.getName())) {
+            storedNames.add(name.getAsString());
+        }
+
+        mapping = COMPILED_MAPPINGS.get(clazz)
+                .computeIfAbsent(storedNames, k -> compileMapping(clazz, storedNames));
 
-            // check whether the property is a model type
-            var isModel = TypeToken.get(propType).getRawType().isAnnotationPresent(Model.class);
-            if (isModel) {
-                var id = parseModelReference(obj.getAsJsonObject(name));
-                modelTargets.put(new SimplePropertyTarget(accessor, instance), id);
-                continue;
+        mappings.put(clazz, mapping);
+        return mapping;
+    }
+
+    private SchemaMapping compileMapping(Class<?> clazz, List<String> storedNames) {
+        var classDecoders = getDecoders(clazz);
+
+        // resolve the current property for each stored property,
+        // by its name or one of its previous names
+        var mapped = new PropertyDecoder[storedNames.size()];
+        for (int i = 0; i < mapped.length; i++) {
+            var name = storedNames.get(i);
+            var decoder = classDecoders.get(name);
+
+            if (decoder == null) {
+                for (var candidate : classDecoders.values()) {
+                    if (Arrays.asList(candidate.accessor.getAliases()).contains(name)) {
+                        decoder = candidate;
+                        break;
+                    }
+                }
             }
 
-            // the property is not a model - deserialize it normally
-            var prop = obj.get(name);
-            var value = parseValue(prop, propType);
+            mapped[i] = decoder;
+        }
+
+        return new SchemaMapping(getDefaultConstructor(clazz), mapped);
+    }
 
-            accessor.set(instance, value);
+    private static Constructor<?> getDefaultConstructor(Class<?> clazz) {
+        try {
+            return clazz.getConstructor();
+        } catch (Exception e) {
+            throw new IllegalArgumentException(String.format("%s doesn't have a public no-args constructor.", clazz.getName()));
         }
+    }
 
-        return instance;
+    /**
+     * Fills in a model reference right away if the model was already parsed,
+     * or adds it to the placeholders to fill in once it was.
+     *
+     * @param target The property target to fill in.
+     * @param id     The referenced model's ID.
+     */
+    private void addModelTarget(PropertyTarget target, int id) throws Exception {
+        if (id < modelObjects.size()) {
+            target.apply(modelObjects.get(id));
+            return;
+        }
+
+        modelTargets.computeIfAbsent(id, k -> new ArrayList<>()).add(target);
     }
 
     private int parseModelReference(JsonObject obj) {
@@ -196,15 +536,9 @@ class Deserializer {
         return obj.get("id").getAsInt();
     }
 
-    private static boolean isPrimitiveOrString(Type type) throws Exception {
-        var clazz = TypeToken.get(type).getRawType();
+    private static boolean isPrimitiveOrString(Class<?> clazz) {
         if (String.class.isAssignableFrom(clazz)) return true;
 
-        // read the PRIMITIVE_TYPES field from JsonPrimitive using reflection
-        var primitiveTypesField = JsonPrimitive.class.getDeclaredField("PRIMITIVE_TYPES");
-        primitiveTypesField.setAccessible(true);
-        var PRIMITIVE_TYPES = (Class<?>[]) primitiveTypesField.get(null);
-
         for (var standardPrimitive : PRIMITIVE_TYPES) {
             if (standardPrimitive.isAssignableFrom(clazz)) {
                 return true;
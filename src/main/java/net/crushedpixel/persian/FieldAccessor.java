@@ -1,15 +1,21 @@
 package net.crushedpixel.persian;
 
+import net.crushedpixel.persian.annotations.Alias;
+
 import java.lang.reflect.Field;
 import java.lang.reflect.Type;
 
 class FieldAccessor implements PropertyAccessor {
 
     private final Field field;
+    private final String[] aliases;
 
     FieldAccessor(Field field) {
         this.field = field;
         field.setAccessible(true);
+
+        var alias = field.getAnnotation(Alias.class);
+        this.aliases = alias == null ? new String[0] : alias.value();
     }
 
     @Override
@@ -17,6 +23,11 @@ class FieldAccessor implements PropertyAccessor {
         return this.field.getGenericType();
     }
 
+    @Override
+    public String[] getAliases() {
+        return this.aliases;
+    }
+
     @Override
     public Object get(Object instance) throws Exception {
         return field.get(instance);
@@ -1,11 +1,14 @@
 package net.crushedpixel.persian;
 
+import net.crushedpixel.persian.annotations.Alias;
+
 import java.lang.reflect.Method;
 import java.lang.reflect.Type;
 
 class MethodAccessor implements PropertyAccessor{
 
     private final Method getter, setter;
+    private final String[] aliases;
 
     public MethodAccessor(Method getter, Method setter) {
         this.getter = getter;
@@ -13,6 +16,11 @@ class MethodAccessor implements PropertyAccessor{
 
         getter.setAccessible(true);
         setter.setAccessible(true);
+
+        // the alias may be declared on either the getter or the setter
+        var alias = getter.getAnnotation(Alias.class);
+        if (alias == null) alias = setter.getAnnotation(Alias.class);
+        this.aliases = alias == null ? new String[0] : alias.value();
     }
 
     @Override
@@ -20,6 +28,11 @@ class MethodAccessor implements PropertyAccessor{
         return this.getter.getGenericReturnType();
     }
 
+    @Override
+    public String[] getAliases() {
+        return this.aliases;
+    }
+
     @Override
     public Object get(Object instance) throws Exception {
         return getter.invoke(instance);
@@ -1,15 +1,62 @@
 package net.crushedpixel.persian;
 
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
 public class Persian {
 
     public static String serialize(Object obj) throws Exception {
         return new Serializer().serialize(obj);
     }
 
+    /**
+     * Serializes an object graph in chunks of at most {@code chunkSize} models,
+     * writing each chunk as soon as it was serialized.
+     * Use this for graphs whose serialized form doesn't fit into memory.
+     */
+    public static void serialize(Object obj, Writer writer, int chunkSize) throws Exception {
+        new Serializer().serialize(obj, writer, chunkSize);
+    }
+
+    public static void serialize(Object obj, WritableByteChannel channel, int chunkSize) throws Exception {
+        // the channel is owned by the caller, so the writer isn't closed
+        serialize(obj, Channels.newWriter(channel, StandardCharsets.UTF_8), chunkSize);
+    }
+
+    public static void serialize(Object obj, Path file, int chunkSize) throws Exception {
+        try (var writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            serialize(obj, writer, chunkSize);
+        }
+    }
+
     public static <T> T deserialize(String json, Class<T> type) throws Exception {
         return new Deserializer().deserialize(json, type);
     }
 
+    /**
+     * Deserializes an object graph that was serialized in chunks.
+     */
+    public static <T> T deserialize(Reader reader, Class<T> type) throws Exception {
+        return new Deserializer().deserialize(reader, type);
+    }
+
+    public static <T> T deserialize(ReadableByteChannel channel, Class<T> type) throws Exception {
+        // the channel is owned by the caller, so the reader isn't closed
+        return deserialize(Channels.newReader(channel, StandardCharsets.UTF_8), type);
+    }
+
+    public static <T> T deserialize(Path file, Class<T> type) throws Exception {
+        try (var reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return deserialize(reader, type);
+        }
+    }
+
     private Persian() {
     }
 
@@ -6,6 +6,11 @@ interface PropertyAccessor {
 
     Type getGenericType();
 
+    /**
+     * @return The previous names of the property, or an empty array.
+     */
+    String[] getAliases();
+
     Object get(Object instance) throws Exception;
 
     void set(Object instance, Object value) throws Exception;
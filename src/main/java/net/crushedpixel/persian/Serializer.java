@@ -7,50 +7,135 @@ import com.google.gson.JsonPrimitive;
 import com.google.gson.reflect.TypeToken;
 import net.crushedpixel.persian.annotations.Model;
 
+import java.io.Writer;
 import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 
 class Serializer {
 
     private PropertyRegistry properties = new PropertyRegistry();
-    private List<Object> modelObjects = new ArrayList<>();
+
+    /**
+     * The ids of all registered models, by identity.
+     */
+    private Map<Object, Integer> modelIds = new IdentityHashMap<>();
+
+    /**
+     * The registered models that weren't serialized yet, in the order of their ids.
+     */
+    private Queue<Object> pendingModels = new ArrayDeque<>();
+
+    /**
+     * The property accessors of each serialized class, in the order
+     * their values are written. Recorded in the snapshot as the class's schema,
+     * so the deserializer can map stored values to properties by index.
+     */
+    private Map<Class<?>, Map<String, PropertyAccessor>> schemas = new HashMap<>();
+
+    /**
+     * The classes whose schema wasn't written yet.
+     */
+    private List<Class<?>> unwrittenSchemas = new ArrayList<>();
 
     String serialize(Object obj) throws Exception {
+        var root = serializeRoot(obj);
+
+        // serialize all models in a single chunk
+        var chunk = serializeChunk(Integer.MAX_VALUE);
+
+        JsonObject json = new JsonObject();
+        json.add("root", root);
+        json.add("schemas", chunk.get("schemas"));
+        json.add("models", chunk.get("models"));
+
+        return json.toString();
+    }
+
+    /**
+     * Serializes an object graph to a writer in chunks of a fixed number of models,
+     * so the serialized form of the whole graph is never held in memory at once.
+     * The first line is a header containing the root reference,
+     * followed by one line per chunk.
+     *
+     * @param obj       The root object to serialize.
+     * @param writer    The writer to write the chunks to.
+     * @param chunkSize The maximum number of models per chunk.
+     */
+    void serialize(Object obj, Writer writer, int chunkSize) throws Exception {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+
+        JsonObject header = new JsonObject();
+        header.add("root", serializeRoot(obj));
+        writer.write(header.toString());
+        writer.write('\n');
+
+        while (!pendingModels.isEmpty()) {
+            writer.write(serializeChunk(chunkSize).toString());
+            writer.write('\n');
+        }
+
+        writer.flush();
+    }
+
+    private JsonElement serializeRoot(Object obj) throws Exception {
         if (!obj.getClass().isAnnotationPresent(Model.class)) {
             throw new IllegalArgumentException("Object's class must have the @Model annotation");
         }
 
-        // serialize the root object
-        var root = serializeObject(obj, obj.getClass(), true);
+        return serializeObject(obj, obj.getClass(), true);
+    }
 
+    /**
+     * Serializes up to the given number of pending models, along with the schemas
+     * of the classes that were first encountered while serializing them.
+     *
+     * @param chunkSize The maximum number of models to serialize.
+     * @return The chunk's JSON object.
+     */
+    private JsonObject serializeChunk(int chunkSize) throws Exception {
         // serialize each model, adding them to a JSON array.
         // serializing models can find new model objects to serialize,
-        // so we repeat this step until all models are resolved.
-        List<Object> serializedModels = new ArrayList<>();
+        // which are added to the end of the queue.
         var modelsArr = new JsonArray();
 
-        do {
-            for (var model : new ArrayList<>(modelObjects)) {
-                if (serializedModels.stream().anyMatch(m -> m == model)) continue;
+        for (int i = 0; i < chunkSize && !pendingModels.isEmpty(); i++) {
+            var model = pendingModels.poll();
+
+            JsonObject modelObj = new JsonObject();
+            modelObj.add("type", new JsonPrimitive(model.getClass().getName()));
+            modelObj.add("value", serializeInstance(model, model.getClass()));
 
-                JsonObject modelObj = new JsonObject();
-                modelObj.add("type", new JsonPrimitive(model.getClass().getName()));
-                modelObj.add("value", serializeInstance(model, model.getClass()));
+            modelsArr.add(modelObj);
+        }
 
-                modelsArr.add(modelObj);
-                serializedModels.add(model);
+        // record the schema of each class that was newly encountered
+        var schemasObj = new JsonObject();
+        for (var clazz : unwrittenSchemas) {
+            var names = new JsonArray();
+            for (var name : schemas.get(clazz).keySet()) {
+                names.add(name);
             }
-        } while (serializedModels.size() < modelObjects.size());
+            schemasObj.add(clazz.getName(), names);
+        }
+        unwrittenSchemas.clear();
 
-        JsonObject json = new JsonObject();
-        json.add("root", root);
-        json.add("models", modelsArr);
+        JsonObject chunk = new JsonObject();
+        chunk.add("schemas", schemasObj);
+        chunk.add("models", modelsArr);
 
-        return json.toString();
+        return chunk;
     }
 
     private JsonElement serializeObject(Object obj, Type genericType) throws Exception {
@@ -95,14 +180,20 @@ class Serializer {
             return primitive;
         }
 
-        // serialize each property
-        var json = new JsonObject();
+        // serialize each property in the order of the class's schema
+        var json = new JsonArray();
+
+        var clazz = TypeToken.get(genericType).getRawType();
+        var accessors = schemas.get(clazz);
+        if (accessors == null) {
+            accessors = new LinkedHashMap<>(properties.getAccessors(clazz));
+            schemas.put(clazz, accessors);
+            unwrittenSchemas.add(clazz);
+        }
 
-        for (var entry : properties.getAccessors(TypeToken.get(genericType).getRawType()).entrySet()) {
-            var name = entry.getKey();
-            var accessor = entry.getValue();
+        for (var accessor : accessors.values()) {
             var serialized = serializeObject(accessor.get(obj), accessor.getGenericType());
-            json.add(name, serialized);
+            json.add(serialized);
         }
 
         return json;
@@ -141,14 +232,14 @@ class Serializer {
      * @return The model's id.
      */
     private int registerModel(Object model) {
-        // add the model to the list of models if and only if this particular instance
-        // isn't contained in the list yet. this way, each unique model instance will
-        // have their own unique index in the list.
-        for (int i = 0; i < modelObjects.size(); i++) {
-            if (modelObjects.get(i) == model) return i;
-        }
-
-        modelObjects.add(model);
-        return modelObjects.size() - 1;
+        // models are identified by instance, so each unique
+        // model instance will have their own unique id.
+        var id = modelIds.get(model);
+        if (id != null) return id;
+
+        id = modelIds.size();
+        modelIds.put(model, id);
+        pendingModels.add(model);
+        return id;
     }
 }
@@ -0,0 +1,15 @@
+package net.crushedpixel.persian.annotations;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Declares previous names of a property, so snapshots
+ * written before the property was renamed can still be loaded.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Alias {
+
+    String[] value();
+
+}
@@ -1,13 +1,20 @@
 package net.crushedpixel.persian;
 
 import net.crushedpixel.persian.annotations.Access;
+import net.crushedpixel.persian.annotations.Alias;
 import net.crushedpixel.persian.annotations.Model;
 import org.junit.jupiter.api.Test;
 
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
 
 import static net.crushedpixel.persian.annotations.Access.AccessType.METHOD;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class PersianTest {
 
@@ -67,8 +74,86 @@ public class PersianTest {
         }
     }
 
-    @Test
-    public void testSerialization() throws Exception {
+    @Model
+    public static class Animal {
+        // stored as "nickname" in older snapshots
+        @Alias("nickname")
+        String name;
+        int legs;
+
+        // added after older snapshots were written
+        String species = "unknown";
+
+        // stored as "years" and "mass" in older snapshots
+        int age;
+        float weight;
+
+        public Animal() {
+        }
+
+        @Access(METHOD)
+        int getAge() {
+            return age;
+        }
+
+        @Alias("years")
+        void setAge(int age) {
+            this.age = age;
+        }
+
+        @Access(METHOD)
+        @Alias("mass")
+        float getWeight() {
+            return weight;
+        }
+
+        void setWeight(float weight) {
+            this.weight = weight;
+        }
+    }
+
+    @Model
+    public static class Ring {
+        List<Node> nodes = new ArrayList<>();
+    }
+
+    @Model
+    public static class Node {
+        // the number of nodes created so far,
+        // to tell when a reference was linked
+        static int created;
+
+        transient int createdAt = ++created;
+        transient int previousLinkedAt, nextLinkedAt;
+
+        int index;
+        Node previous, next;
+
+        public Node() {
+        }
+
+        @Access(METHOD)
+        Node getPrevious() {
+            return previous;
+        }
+
+        void setPrevious(Node previous) {
+            this.previous = previous;
+            this.previousLinkedAt = created;
+        }
+
+        @Access(METHOD)
+        Node getNext() {
+            return next;
+        }
+
+        void setNext(Node next) {
+            this.next = next;
+            this.nextLinkedAt = created;
+        }
+    }
+
+    private static TestModel createTestModel() {
         var model = new TestModel();
 
         var swimmingHobby = new Hobby("Swimming", new Price("€", 3.5f));
@@ -101,6 +186,13 @@ public class PersianTest {
         person2.friends.add(person1);
         person1.friends.add(person2);
 
+        return model;
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        var model = createTestModel();
+
         String json = Persian.serialize(model);
         System.out.println(json);
     }
@@ -113,4 +205,157 @@ public class PersianTest {
         System.out.println(model);
     }
 
+    @Test
+    public void testRoundTrip() throws Exception {
+        var model = Persian.deserialize(Persian.serialize(createTestModel()), TestModel.class);
+
+        assertEquals(2, model.people.size());
+        var person1 = model.people.get(0);
+        var person2 = model.people.get(1);
+
+        assertEquals("Marius", person1.name);
+        assertEquals(20, person1.age);
+        assertEquals("Programming", person1.hobbies.get(0).name);
+        assertEquals("$", person1.hobbies.get(0).price.unit);
+        assertEquals(3.5f, person2.hobbies.get(0).price.amount);
+
+        // shared and circular references resolve to the same instances
+        assertSame(person1.hobbies.get(1), person2.hobbies.get(1));
+        assertSame(person2, person1.friends.get(0));
+        assertSame(person1, person2.friends.get(0));
+    }
+
+    @Test
+    public void testChunkedRoundTrip() throws Exception {
+        var writer = new StringWriter();
+        Persian.serialize(createTestModel(), writer, 2);
+
+        // header, followed by six models in chunks of two
+        assertEquals(4, writer.toString().split("\n").length);
+
+        var model = Persian.deserialize(new StringReader(writer.toString()), TestModel.class);
+
+        var person1 = model.people.get(0);
+        var person2 = model.people.get(1);
+
+        assertEquals("Marius", person1.name);
+        assertEquals("Günther", person2.name);
+        assertEquals("Programming", person1.hobbies.get(0).name);
+        assertEquals("Swimming", person2.hobbies.get(0).name);
+
+        // references across chunks resolve to the same instances
+        assertSame(person1.hobbies.get(1), person2.hobbies.get(1));
+        assertSame(person2, person1.friends.get(0));
+        assertSame(person1, person2.friends.get(0));
+    }
+
+    @Test
+    public void testFormatMismatch() throws Exception {
+        var writer = new StringWriter();
+        Persian.serialize(createTestModel(), writer, 2);
+        var chunked = writer.toString();
+        var single = Persian.serialize(createTestModel());
+
+        assertThrows(IllegalArgumentException.class, () -> Persian.deserialize(chunked, TestModel.class));
+        assertThrows(IllegalArgumentException.class, () -> Persian.deserialize(new StringReader(single), TestModel.class));
+    }
+
+    @Test
+    public void testChunkedReferenceLinking() throws Exception {
+        // a ring of nodes, so every node has a backward and a forward reference
+        var ring = new Ring();
+        for (int i = 0; i < 1000; i++) {
+            ring.nodes.add(new Node());
+        }
+        for (int i = 0; i < 1000; i++) {
+            var node = ring.nodes.get(i);
+            node.index = i;
+            node.previous = ring.nodes.get((i + 999) % 1000);
+            node.next = ring.nodes.get((i + 1) % 1000);
+        }
+
+        var writer = new StringWriter();
+        Persian.serialize(ring, writer, 10);
+
+        Node.created = 0;
+        var loaded = Persian.deserialize(new StringReader(writer.toString()), Ring.class);
+
+        assertEquals(1000, loaded.nodes.size());
+        for (int i = 0; i < 1000; i++) {
+            var node = loaded.nodes.get(i);
+            var previous = loaded.nodes.get((i + 999) % 1000);
+            var next = loaded.nodes.get((i + 1) % 1000);
+
+            assertEquals(i, node.index);
+            assertSame(previous, node.previous);
+            assertSame(next, node.next);
+
+            // forward references are linked once the referenced node was parsed
+            assertTrue(node.nextLinkedAt >= next.createdAt);
+        }
+
+        for (int i = 1; i < 1000; i++) {
+            // backward references are linked right away,
+            // before any other node is parsed
+            var node = loaded.nodes.get(i);
+            assertEquals(node.createdAt, node.previousLinkedAt);
+        }
+
+        // the first node's previous node is in the last chunk
+        assertEquals(1000, loaded.nodes.get(0).previousLinkedAt);
+    }
+
+    @Test
+    public void testSchemaEvolution() throws Exception {
+        // the stored schema has properties that were renamed ("nickname", "years", "mass"),
+        // one that was removed ("color") and lacks one that was added ("species")
+        var animal = Persian.deserialize("{\"root\":{\"id\":0},\"schemas\":{\"net.crushedpixel.persian.PersianTest$Animal\":[\"color\",\"nickname\",\"legs\",\"years\",\"mass\"]},\"models\":[{\"type\":\"net.crushedpixel.persian.PersianTest$Animal\",\"value\":[\"brown\",\"Rex\",4,7,12.5]}]}",
+                Animal.class);
+
+        assertEquals("Rex", animal.name);
+        assertEquals(4, animal.legs);
+        assertEquals("unknown", animal.species);
+        assertEquals(7, animal.age);
+        assertEquals(12.5f, animal.weight);
+    }
+
+    @Test
+    public void testSchemaMismatch() {
+        // the stored object has fewer values than its schema has properties
+        assertThrows(IllegalArgumentException.class, () -> Persian.deserialize("{\"root\":{\"id\":0},\"schemas\":{\"net.crushedpixel.persian.PersianTest$Animal\":[\"legs\",\"nickname\"]},\"models\":[{\"type\":\"net.crushedpixel.persian.PersianTest$Animal\",\"value\":[2]}]}",
+                Animal.class));
+    }
+
+    @Test
+    public void testSchemaVersions() throws Exception {
+        var current = new Animal();
+        current.name = "Tom";
+        current.legs = 4;
+        current.species = "cat";
+
+        // the current schema and an older one of the same class
+        // must each be loaded with their own mapping
+        var animal = Persian.deserialize(Persian.serialize(current), Animal.class);
+        var oldAnimal = Persian.deserialize("{\"root\":{\"id\":0},\"schemas\":{\"net.crushedpixel.persian.PersianTest$Animal\":[\"legs\",\"nickname\"]},\"models\":[{\"type\":\"net.crushedpixel.persian.PersianTest$Animal\",\"value\":[2,\"Tweety\"]}]}",
+                Animal.class);
+
+        assertEquals("Tom", animal.name);
+        assertEquals("cat", animal.species);
+        assertEquals("Tweety", oldAnimal.name);
+        assertEquals(2, oldAnimal.legs);
+        assertEquals("unknown", oldAnimal.species);
+    }
+
+    @Test
+    public void testLegacySchemaEvolution() throws Exception {
+        var animal = Persian.deserialize("{\"root\":{\"id\":0},\"models\":[{\"type\":\"net.crushedpixel.persian.PersianTest$Animal\",\"value\":{\"color\":\"brown\",\"nickname\":\"Rex\",\"legs\":4,\"years\":7,\"mass\":12.5}}]}",
+                Animal.class);
+
+        assertEquals("Rex", animal.name);
+        assertEquals(4, animal.legs);
+        assertEquals("unknown", animal.species);
+        assertEquals(7, animal.age);
+        assertEquals(12.5f, animal.weight);
+    }
+
 }